@@ -0,0 +1,430 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.broadleafcommerce.pricing.service.module;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.broadleafcommerce.common.util.DimensionUnitOfMeasureType;
+import org.broadleafcommerce.common.util.UnitOfMeasureUtil;
+import org.broadleafcommerce.common.util.WeightUnitOfMeasureType;
+import org.broadleafcommerce.common.vendor.service.exception.FulfillmentPriceException;
+import org.broadleafcommerce.core.catalog.domain.Dimension;
+import org.broadleafcommerce.core.catalog.domain.Sku;
+import org.broadleafcommerce.core.catalog.domain.Weight;
+import org.broadleafcommerce.core.order.domain.BundleOrderItem;
+import org.broadleafcommerce.core.order.domain.DiscreteOrderItem;
+import org.broadleafcommerce.core.order.domain.FulfillmentGroup;
+import org.broadleafcommerce.core.order.domain.FulfillmentGroupItem;
+import org.broadleafcommerce.core.order.domain.GiftWrapOrderItem;
+import org.broadleafcommerce.core.order.domain.OrderItem;
+import org.broadleafcommerce.vendor.usps.service.message.USPSContainerItem;
+import org.broadleafcommerce.vendor.usps.service.message.USPSContainerItemRequest;
+import org.broadleafcommerce.vendor.usps.service.type.USPSContainerSizeType;
+import org.broadleafcommerce.vendor.usps.service.type.USPSFirstClassType;
+import org.broadleafcommerce.vendor.usps.service.type.USPSServiceType;
+
+/**
+ * This implementation of the USPSShippingCalculationModule packs the units of the fulfillment
+ * group order items (including the components of bundles) into as few of the configured
+ * containers as it can, so that a large order is priced as a handful of packages in a single
+ * request rather than one package per unit.
+ * <p>
+ * Units are packed first fit decreasing: largest first, each into the first open box with
+ * room for it by weight and volume, opening the largest suitable container when none has room.
+ * Every box is then shrunk to the smallest container that still holds its contents. A unit
+ * only fits a container if each of its sorted dimensions fits the container's, and only
+ * fillRatio of a container's volume is used, to leave room for the gaps a real packing leaves.
+ * The order of the fulfillment group items is the only tie breaker, so the same order always
+ * produces the same packages. Units without a weight and dimensions, or that fit no container,
+ * are shipped in their own packaging as USPSSingleItemPerPackageShippingCalculationModule does.
+ * If no containers are configured, every unit is shipped in its own packaging.
+ * <p>
+ * Unlike USPSSingleItemPerPackageShippingCalculationModule, which prices one package per
+ * order item whatever its quantity, every unit of quantity is packed: an item with a quantity
+ * of three is three units, and a bundle component counts the bundle quantity times its own.
+ * Units shipped in their own packaging are therefore priced once per unit as well.
+ */
+public class USPSConsolidatedPackageShippingCalculationModule extends USPSSingleItemPerPackageShippingCalculationModule {
+    
+    private static final Log LOG = LogFactory.getLog(USPSConsolidatedPackageShippingCalculationModule.class);
+    
+    /*
+     * USPS considers a package large once any of its dimensions exceeds a foot.
+     */
+    private static final double LARGE_DIMENSION_INCHES = 12D;
+    
+    private static final Comparator<PackingUnit> LARGEST_FIRST = new Comparator<PackingUnit>() {
+        public int compare(PackingUnit unit1, PackingUnit unit2) {
+            int result = Double.compare(unit2.volume, unit1.volume);
+            if (result == 0) {
+                result = Double.compare(unit2.weight, unit1.weight);
+            }
+            if (result == 0) {
+                result = unit1.index < unit2.index ? -1 : (unit1.index == unit2.index ? 0 : 1);
+            }
+            return result;
+        }
+    };
+    
+    protected List<USPSPackagingContainer> containers = new ArrayList<USPSPackagingContainer>();
+    protected BigDecimal maxPackageWeight = new BigDecimal("70");
+    protected BigDecimal maxLengthPlusGirth = new BigDecimal("108");
+    protected BigDecimal fillRatio = new BigDecimal("0.85");
+    
+    private volatile PackingContainer[] packingContainers;
+    
+    @Override
+    protected List<USPSContainerItemRequest> createPackages(FulfillmentGroup fulfillmentGroup) throws FulfillmentPriceException {
+        PackingContainer[] candidates = getPackingContainers();
+        List<PackingUnit> units = createUnits(fulfillmentGroup);
+        List<USPSContainerItemRequest> itemRequests = new ArrayList<USPSContainerItemRequest>();
+        List<PackingUnit> packableUnits = new ArrayList<PackingUnit>(units.size());
+        int counter = 0;
+        for (PackingUnit unit : units) {
+            if (unit.dimensions == null || findLargestContainer(candidates, unit) == null) {
+                itemRequests.add(createRequest(fulfillmentGroup, unit.discreteItem, counter));
+                counter++;
+            } else {
+                packableUnits.add(unit);
+            }
+        }
+        Collections.sort(packableUnits, LARGEST_FIRST);
+        List<PackedBox> boxes = new ArrayList<PackedBox>();
+        for (PackingUnit unit : packableUnits) {
+            PackedBox target = null;
+            for (PackedBox box : boxes) {
+                if (box.accepts(unit)) {
+                    target = box;
+                    break;
+                }
+            }
+            if (target == null) {
+                target = new PackedBox(findLargestContainer(candidates, unit));
+                boxes.add(target);
+            }
+            target.add(unit);
+        }
+        for (PackedBox box : boxes) {
+            box.shrink(candidates);
+            itemRequests.add(createRequest(fulfillmentGroup, box, counter));
+            counter++;
+        }
+        
+        return itemRequests;
+    }
+    
+    /**
+     * Expands the fulfillment group items into one packing unit per unit of quantity, in order.
+     */
+    protected List<PackingUnit> createUnits(FulfillmentGroup fulfillmentGroup) throws FulfillmentPriceException {
+        List<PackingUnit> units = new ArrayList<PackingUnit>();
+        for (FulfillmentGroupItem fgItem : fulfillmentGroup.getFulfillmentGroupItems()) {
+            OrderItem orderItem = fgItem.getOrderItem();
+            if(BundleOrderItem.class.isAssignableFrom(orderItem.getClass())) {
+                for (DiscreteOrderItem discreteItem : ((BundleOrderItem) orderItem).getDiscreteOrderItems()) {
+                    addUnits(units, discreteItem, fgItem.getQuantity() * discreteItem.getQuantity());
+                }
+            } else if (GiftWrapOrderItem.class.isAssignableFrom(orderItem.getClass())) {
+                List<OrderItem> wrappedItems = ((GiftWrapOrderItem) orderItem).getWrappedItems();
+                if (!fulfillmentGroup.getOrder().getOrderItems().containsAll(wrappedItems)){
+                    throw new FulfillmentPriceException("To price shipping correctly, the items contained in the GiftWrapOrderItem must also individually appear in the order, not just in the wrappedItems collection of GiftWrapOrderItem.");
+                }
+            } else if (DiscreteOrderItem.class.isAssignableFrom(orderItem.getClass())) {
+                addUnits(units, (DiscreteOrderItem) orderItem, fgItem.getQuantity());
+            }
+        }
+        return units;
+    }
+    
+    protected void addUnits(List<PackingUnit> units, DiscreteOrderItem discreteItem, int quantity) {
+        Sku sku = discreteItem.getSku();
+        double weight = findPounds(sku.getWeight());
+        double[] dimensions = weight < 0 ? null : findInches(sku.getDimension());
+        for (int j = 0; j < quantity; j++) {
+            units.add(new PackingUnit(discreteItem, units.size(), weight, dimensions, sku.isMachineSortable()));
+        }
+    }
+    
+    protected USPSContainerItemRequest createRequest(FulfillmentGroup fulfillmentGroup, PackedBox box, int counter) throws FulfillmentPriceException {
+        String[] methods = fulfillmentGroup.getMethod().split("_");
+        USPSServiceType serviceType = resolveServiceType(fulfillmentGroup);
+        PackingContainer packingContainer = box.container;
+        USPSContainerItemRequest itemRequest = new USPSContainerItem();
+        itemRequest.setService(serviceType);
+        USPSContainerSizeType containerSize = packingContainer.container.getContainerSize();
+        if (containerSize == null) {
+            containerSize = packingContainer.dimensions[0] > LARGE_DIMENSION_INCHES ? USPSContainerSizeType.LARGE : USPSContainerSizeType.REGULAR;
+        }
+        itemRequest.setContainerSize(containerSize);
+        itemRequest.setContainerShape(packingContainer.container.getContainerShape());
+        itemRequest.setDimensionUnitOfMeasureType(DimensionUnitOfMeasureType.INCHES);
+        itemRequest.setWidth(UnitOfMeasureUtil.findInches(packingContainer.container.getWidth(), packingContainer.container.getDimensionUnitOfMeasureType()));
+        itemRequest.setHeight(UnitOfMeasureUtil.findInches(packingContainer.container.getHeight(), packingContainer.container.getDimensionUnitOfMeasureType()));
+        itemRequest.setDepth(UnitOfMeasureUtil.findInches(packingContainer.container.getDepth(), packingContainer.container.getDimensionUnitOfMeasureType()));
+        itemRequest.setGirth(BigDecimal.valueOf(packingContainer.girth));
+        if (serviceType.equals(USPSServiceType.FIRSTCLASS) && methods.length > 1) {
+            itemRequest.setFirstClassType(USPSFirstClassType.getInstance(methods[1]));
+        }
+        if (serviceType.equals(USPSServiceType.ALL) || serviceType.equals(USPSServiceType.PARCEL) || serviceType.equals(USPSServiceType.ONLINE) || (serviceType.equals(USPSServiceType.FIRSTCLASS) && itemRequest.getFirstClassType() != null && (itemRequest.getFirstClassType().equals(USPSFirstClassType.LETTER) || itemRequest.getFirstClassType().equals(USPSFirstClassType.FLAT)))) {
+            itemRequest.setMachineSortable(box.machineSortable);
+        }
+        itemRequest.setPackageId(String.valueOf(counter));
+        //round up, so that a box is never priced below its real weight
+        itemRequest.setWeight(BigDecimal.valueOf(box.weight + packingContainer.tareWeight).setScale(2, RoundingMode.CEILING));
+        itemRequest.setWeightUnitOfMeasureType(WeightUnitOfMeasureType.POUNDS);
+        itemRequest.setZipDestination(fulfillmentGroup.getAddress().getPostalCode());
+        itemRequest.setZipOrigination(getOriginationPostalCode());
+        
+        return itemRequest;
+    }
+    
+    /**
+     * @return the largest container the unit fits on its own, or null if it fits none of them
+     */
+    protected PackingContainer findLargestContainer(PackingContainer[] candidates, PackingUnit unit) {
+        for (int j = candidates.length - 1; j >= 0; j--) {
+            if (candidates[j].holds(unit.dimensions, unit.volume, unit.weight)) {
+                return candidates[j];
+            }
+        }
+        return null;
+    }
+    
+    /*
+     * The containers that pass the package limits, converted to inches and pounds
+     * and ordered smallest first. Built once, as the containers are configuration.
+     */
+    protected PackingContainer[] getPackingContainers() {
+        PackingContainer[] temp = packingContainers;
+        if (temp == null) {
+            synchronized (this) {
+                temp = packingContainers;
+                if (temp == null) {
+                    List<PackingContainer> candidates = new ArrayList<PackingContainer>(containers.size());
+                    for (int j = 0; j < containers.size(); j++) {
+                        PackingContainer candidate = new PackingContainer(containers.get(j), j);
+                        if (candidate.dimensions[0] + candidate.girth > maxLengthPlusGirth.doubleValue()) {
+                            LOG.warn("The container (" + containers.get(j) + ") exceeds the maximum length plus girth of (" + maxLengthPlusGirth + ") inches and will not be used");
+                        } else if (candidate.maxContentWeight <= 0D) {
+                            LOG.warn("The container (" + containers.get(j) + ") has no weight left for its contents and will not be used");
+                        } else {
+                            candidates.add(candidate);
+                        }
+                    }
+                    temp = candidates.toArray(new PackingContainer[candidates.size()]);
+                    Arrays.sort(temp);
+                    packingContainers = temp;
+                }
+            }
+        }
+        return temp;
+    }
+    
+    /*
+     * -1 when the weight is missing, so the unit is shipped on its own
+     * and the request validator reports it as it always has.
+     */
+    private static double findPounds(Weight weight) {
+        if (weight == null || weight.getWeight() == null || weight.getWeightUnitOfMeasure() == null) {
+            return -1D;
+        }
+        return UnitOfMeasureUtil.findPounds(weight.getWeight(), weight.getWeightUnitOfMeasure()).doubleValue();
+    }
+    
+    /*
+     * Sorted longest first, so that fitting an item into a container only has to
+     * compare the dimensions pairwise.
+     */
+    private static double[] findInches(Dimension dimension) {
+        if (dimension == null || dimension.getWidth() == null || dimension.getHeight() == null || dimension.getDepth() == null || dimension.getDimensionUnitOfMeasure() == null) {
+            return null;
+        }
+        return sortDescending(
+                UnitOfMeasureUtil.findInches(dimension.getWidth(), dimension.getDimensionUnitOfMeasure()).doubleValue(),
+                UnitOfMeasureUtil.findInches(dimension.getHeight(), dimension.getDimensionUnitOfMeasure()).doubleValue(),
+                UnitOfMeasureUtil.findInches(dimension.getDepth(), dimension.getDimensionUnitOfMeasure()).doubleValue()
+        );
+    }
+    
+    private static double[] sortDescending(double first, double second, double third) {
+        double[] dimensions = new double[] {first, second, third};
+        Arrays.sort(dimensions);
+        double temp = dimensions[0];
+        dimensions[0] = dimensions[2];
+        dimensions[2] = temp;
+        return dimensions;
+    }
+    
+    public List<USPSPackagingContainer> getContainers() {
+        return containers;
+    }
+
+    public void setContainers(List<USPSPackagingContainer> containers) {
+        this.containers = containers;
+        this.packingContainers = null;
+    }
+
+    /**
+     * @return the most a single package may weigh in pounds, 70 by default
+     */
+    public BigDecimal getMaxPackageWeight() {
+        return maxPackageWeight;
+    }
+
+    public void setMaxPackageWeight(BigDecimal maxPackageWeight) {
+        this.maxPackageWeight = maxPackageWeight;
+        this.packingContainers = null;
+    }
+
+    /**
+     * @return the most the length plus girth of a container may be in inches, 108 by default
+     */
+    public BigDecimal getMaxLengthPlusGirth() {
+        return maxLengthPlusGirth;
+    }
+
+    public void setMaxLengthPlusGirth(BigDecimal maxLengthPlusGirth) {
+        this.maxLengthPlusGirth = maxLengthPlusGirth;
+        this.packingContainers = null;
+    }
+
+    /**
+     * @return the share of a container's volume that may be filled, 0.85 by default
+     */
+    public BigDecimal getFillRatio() {
+        return fillRatio;
+    }
+
+    public void setFillRatio(BigDecimal fillRatio) {
+        this.fillRatio = fillRatio;
+        this.packingContainers = null;
+    }
+
+    protected static class PackingUnit {
+        
+        protected final DiscreteOrderItem discreteItem;
+        protected final int index;
+        protected final double weight;
+        protected final double[] dimensions;
+        protected final double volume;
+        protected final Boolean machineSortable;
+        
+        protected PackingUnit(DiscreteOrderItem discreteItem, int index, double weight, double[] dimensions, Boolean machineSortable) {
+            this.discreteItem = discreteItem;
+            this.index = index;
+            this.weight = weight;
+            this.dimensions = dimensions;
+            this.volume = dimensions == null ? 0D : dimensions[0] * dimensions[1] * dimensions[2];
+            this.machineSortable = machineSortable;
+        }
+    }
+    
+    protected class PackingContainer implements Comparable<PackingContainer> {
+        
+        protected final USPSPackagingContainer container;
+        protected final int index;
+        protected final double[] dimensions;
+        protected final double girth;
+        protected final double capacity;
+        protected final double tareWeight;
+        protected final double maxContentWeight;
+        
+        protected PackingContainer(USPSPackagingContainer container, int index) {
+            this.container = container;
+            this.index = index;
+            DimensionUnitOfMeasureType dimensionUnit = container.getDimensionUnitOfMeasureType();
+            dimensions = sortDescending(
+                    UnitOfMeasureUtil.findInches(container.getWidth(), dimensionUnit).doubleValue(),
+                    UnitOfMeasureUtil.findInches(container.getHeight(), dimensionUnit).doubleValue(),
+                    UnitOfMeasureUtil.findInches(container.getDepth(), dimensionUnit).doubleValue()
+            );
+            girth = 2D * (dimensions[1] + dimensions[2]);
+            capacity = dimensions[0] * dimensions[1] * dimensions[2] * fillRatio.doubleValue();
+            WeightUnitOfMeasureType weightUnit = container.getWeightUnitOfMeasureType();
+            tareWeight = container.getTareWeight() == null ? 0D : UnitOfMeasureUtil.findPounds(container.getTareWeight(), weightUnit).doubleValue();
+            double maxWeight = maxPackageWeight.doubleValue();
+            if (container.getMaxWeight() != null) {
+                maxWeight = Math.min(maxWeight, UnitOfMeasureUtil.findPounds(container.getMaxWeight(), weightUnit).doubleValue());
+            }
+            maxContentWeight = maxWeight - tareWeight;
+        }
+        
+        protected boolean holds(double[] contentDimensions, double contentVolume, double contentWeight) {
+            return contentWeight <= maxContentWeight && contentVolume <= capacity &&
+                    contentDimensions[0] <= dimensions[0] && contentDimensions[1] <= dimensions[1] && contentDimensions[2] <= dimensions[2];
+        }
+
+        public int compareTo(PackingContainer other) {
+            int result = Double.compare(capacity, other.capacity);
+            if (result == 0) {
+                result = Double.compare(maxContentWeight, other.maxContentWeight);
+            }
+            if (result == 0) {
+                result = index < other.index ? -1 : (index == other.index ? 0 : 1);
+            }
+            return result;
+        }
+    }
+    
+    protected static class PackedBox {
+        
+        protected PackingContainer container;
+        protected double weight;
+        protected double volume;
+        /*
+         * the largest of each sorted dimension across the units, as every
+         * unit has to fit the container on its own
+         */
+        protected final double[] dimensions = new double[3];
+        protected boolean machineSortable = true;
+        
+        protected PackedBox(PackingContainer container) {
+            this.container = container;
+        }
+        
+        protected boolean accepts(PackingUnit unit) {
+            return container.holds(unit.dimensions, volume + unit.volume, weight + unit.weight);
+        }
+        
+        protected void add(PackingUnit unit) {
+            weight += unit.weight;
+            volume += unit.volume;
+            for (int j = 0; j < dimensions.length; j++) {
+                dimensions[j] = Math.max(dimensions[j], unit.dimensions[j]);
+            }
+            //a box is only machinable if everything in it is
+            machineSortable &= Boolean.TRUE.equals(unit.machineSortable);
+        }
+        
+        protected void shrink(PackingContainer[] candidates) {
+            for (PackingContainer candidate : candidates) {
+                if (candidate.holds(dimensions, volume, weight)) {
+                    container = candidate;
+                    return;
+                }
+            }
+        }
+    }
+}
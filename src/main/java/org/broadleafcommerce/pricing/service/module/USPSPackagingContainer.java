@@ -0,0 +1,137 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.broadleafcommerce.pricing.service.module;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+
+import org.broadleafcommerce.common.util.DimensionUnitOfMeasureType;
+import org.broadleafcommerce.common.util.WeightUnitOfMeasureType;
+import org.broadleafcommerce.vendor.usps.service.type.USPSContainerShapeType;
+import org.broadleafcommerce.vendor.usps.service.type.USPSContainerSizeType;
+
+/**
+ * A shipping box that USPSConsolidatedPackageShippingCalculationModule may pack order
+ * items into. The dimensions are the outside dimensions of the box, which are what USPS
+ * prices, and the tare weight is added to the weight of the contents. If the container
+ * size is not set, it is derived from the dimensions. The container shape is only sent
+ * when it is set, as RateV2 knows no shape but the flat rate ones.
+ */
+public class USPSPackagingContainer implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private String name;
+    private BigDecimal width;
+    private BigDecimal height;
+    private BigDecimal depth;
+    private DimensionUnitOfMeasureType dimensionUnitOfMeasureType = DimensionUnitOfMeasureType.INCHES;
+    private BigDecimal tareWeight = BigDecimal.ZERO;
+    private BigDecimal maxWeight;
+    private WeightUnitOfMeasureType weightUnitOfMeasureType = WeightUnitOfMeasureType.POUNDS;
+    private USPSContainerShapeType containerShape;
+    private USPSContainerSizeType containerSize;
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public BigDecimal getWidth() {
+        return width;
+    }
+
+    public void setWidth(BigDecimal width) {
+        this.width = width;
+    }
+
+    public BigDecimal getHeight() {
+        return height;
+    }
+
+    public void setHeight(BigDecimal height) {
+        this.height = height;
+    }
+
+    public BigDecimal getDepth() {
+        return depth;
+    }
+
+    public void setDepth(BigDecimal depth) {
+        this.depth = depth;
+    }
+
+    public DimensionUnitOfMeasureType getDimensionUnitOfMeasureType() {
+        return dimensionUnitOfMeasureType;
+    }
+
+    public void setDimensionUnitOfMeasureType(DimensionUnitOfMeasureType dimensionUnitOfMeasureType) {
+        this.dimensionUnitOfMeasureType = dimensionUnitOfMeasureType;
+    }
+
+    public BigDecimal getTareWeight() {
+        return tareWeight;
+    }
+
+    public void setTareWeight(BigDecimal tareWeight) {
+        this.tareWeight = tareWeight;
+    }
+
+    /**
+     * @return the most the packed box, tare included, may weigh, or null to only apply
+     * the module's maxPackageWeight
+     */
+    public BigDecimal getMaxWeight() {
+        return maxWeight;
+    }
+
+    public void setMaxWeight(BigDecimal maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    public WeightUnitOfMeasureType getWeightUnitOfMeasureType() {
+        return weightUnitOfMeasureType;
+    }
+
+    public void setWeightUnitOfMeasureType(WeightUnitOfMeasureType weightUnitOfMeasureType) {
+        this.weightUnitOfMeasureType = weightUnitOfMeasureType;
+    }
+
+    public USPSContainerShapeType getContainerShape() {
+        return containerShape;
+    }
+
+    public void setContainerShape(USPSContainerShapeType containerShape) {
+        this.containerShape = containerShape;
+    }
+
+    public USPSContainerSizeType getContainerSize() {
+        return containerSize;
+    }
+
+    public void setContainerSize(USPSContainerSizeType containerSize) {
+        this.containerSize = containerSize;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + width + "x" + height + "x" + depth + ")";
+    }
+}
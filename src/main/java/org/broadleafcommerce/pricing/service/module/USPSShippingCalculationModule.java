@@ -16,8 +16,16 @@
 
 package org.broadleafcommerce.pricing.service.module;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Resource;
 
@@ -27,6 +35,7 @@ import org.broadleafcommerce.common.vendor.service.exception.FulfillmentPriceExc
 import org.broadleafcommerce.core.order.domain.FulfillmentGroup;
 import org.broadleafcommerce.core.pricing.service.module.ShippingModule;
 import org.broadleafcommerce.common.money.Money;
+import org.broadleafcommerce.order.service.type.USPSServiceMethod;
 import org.broadleafcommerce.vendor.usps.service.USPSShippingCalculationService;
 import org.broadleafcommerce.vendor.usps.service.message.USPSContainerItemRequest;
 import org.broadleafcommerce.vendor.usps.service.message.USPSContainerItemResponse;
@@ -34,6 +43,7 @@ import org.broadleafcommerce.vendor.usps.service.message.USPSPostage;
 import org.broadleafcommerce.vendor.usps.service.message.USPSShippingPriceRequest;
 import org.broadleafcommerce.vendor.usps.service.message.USPSShippingPriceResponse;
 import org.broadleafcommerce.vendor.usps.service.type.USPSServiceResponseType;
+import org.broadleafcommerce.vendor.usps.service.type.USPSServiceType;
 
 /**
  * This module will utilize the USPSShippingCalculationService to take your fulfillment group
@@ -47,30 +57,191 @@ import org.broadleafcommerce.vendor.usps.service.type.USPSServiceResponseType;
 public abstract class USPSShippingCalculationModule implements ShippingModule {
     
 private static final Log LOG = LogFactory.getLog(USPSSingleItemPerPackageShippingCalculationModule.class);
+
+    private static final Map<String, String> COMPACT_SHAPES = new ConcurrentHashMap<String, String>();
     
     protected String name = "USPSShippingCalculationModule";
     protected String originationPostalCode;
     protected Boolean isDefaultModule = false;
+    protected Long quoteTimeoutMillis;
+    protected Boolean rateShopping = false;
     
     @Resource
     protected USPSShippingCalculationService shippingCalculationService;
     
     public FulfillmentGroup calculateShippingForFulfillmentGroup(FulfillmentGroup fulfillmentGroup) throws FulfillmentPriceException {
+        if (!requiresQuote(fulfillmentGroup)) {
+            return fulfillmentGroup;
+        }
+        List<USPSContainerItemRequest> requestItems = createPackages(fulfillmentGroup);
+        USPSShippingPriceRequest request = new USPSShippingPriceRequest();
+        request.getContainerItems().addAll(requestItems);
+        USPSShippingPriceResponse response = shippingCalculationService.process(request);
+        
+        return applyShippingPrice(fulfillmentGroup, requestItems, response);
+    }
+    
+    /**
+     * Prices several fulfillment groups at once. The USPS quotes for all of the groups are
+     * started together and then joined, so the groups cost one round trip instead of one
+     * round trip each. If quoteTimeoutMillis is set, every quote must complete within it.
+     * <p/>
+     * This method is not part of ShippingModule, and the pricing workflow still calls
+     * calculateShippingForFulfillmentGroup once per group. Callers that hold every group of
+     * an order opt in by calling it directly before the workflow runs, for example from a
+     * custom pricing activity:
+     * <pre>
+     * uspsModule.calculateShippingForFulfillmentGroups(order.getFulfillmentGroups());
+     * </pre>
+     * The groups come back priced, so the workflow's own calls for them are answered from the
+     * rate cache, when the service has one, instead of calling the host again.
+     */
+    public List<FulfillmentGroup> calculateShippingForFulfillmentGroups(List<FulfillmentGroup> fulfillmentGroups) throws FulfillmentPriceException {
+        List<List<USPSContainerItemRequest>> requestItemsList = new ArrayList<List<USPSContainerItemRequest>>(fulfillmentGroups.size());
+        List<Future<USPSShippingPriceResponse>> futures = new ArrayList<Future<USPSShippingPriceResponse>>(fulfillmentGroups.size());
+        try {
+            for (FulfillmentGroup fulfillmentGroup : fulfillmentGroups) {
+                if (!requiresQuote(fulfillmentGroup)) {
+                    requestItemsList.add(null);
+                    futures.add(null);
+                    continue;
+                }
+                List<USPSContainerItemRequest> requestItems = createPackages(fulfillmentGroup);
+                USPSShippingPriceRequest request = new USPSShippingPriceRequest();
+                request.getContainerItems().addAll(requestItems);
+                requestItemsList.add(requestItems);
+                if (quoteTimeoutMillis == null) {
+                    futures.add(shippingCalculationService.processAsync(request));
+                } else {
+                    futures.add(shippingCalculationService.processAsync(request, quoteTimeoutMillis, TimeUnit.MILLISECONDS));
+                }
+            }
+            for (int j = 0; j < fulfillmentGroups.size(); j++) {
+                if (futures.get(j) != null) {
+                    applyShippingPrice(fulfillmentGroups.get(j), requestItemsList.get(j), join(futures.get(j)));
+                }
+            }
+        } catch (FulfillmentPriceException e) {
+            for (Future<USPSShippingPriceResponse> future : futures) {
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+            throw e;
+        }
+        
+        return fulfillmentGroups;
+    }
+    
+    /**
+     * Quotes every shipping method USPS returned for the fulfillment group, summed across its
+     * packages. A method is only included if every package was priced for it. With rateShopping
+     * enabled a single request prices all of the methods, and if the service has a rate cache,
+     * the later calculateShippingForFulfillmentGroup for the chosen method is served from it.
+     */
+    public Map<USPSServiceResponseType, Money> quoteAllMethods(FulfillmentGroup fulfillmentGroup) throws FulfillmentPriceException {
+        if (!requiresQuote(fulfillmentGroup)) {
+            return new HashMap<USPSServiceResponseType, Money>();
+        }
+        List<USPSContainerItemRequest> requestItems = createPackages(fulfillmentGroup);
+        USPSShippingPriceRequest request = new USPSShippingPriceRequest();
+        request.getContainerItems().addAll(requestItems);
+        USPSShippingPriceResponse response = shippingCalculationService.process(request);
+        
+        return sumPostage(response.getResponses());
+    }
+    
+    /**
+     * Totals the rate of each method across the packages. Postage without a rate is skipped,
+     * so a method is left out unless every package has a rate for it.
+     */
+    protected Map<USPSServiceResponseType, Money> sumPostage(List<USPSContainerItemResponse> itemResponses) {
+        Map<USPSServiceResponseType, Money> totals = new HashMap<USPSServiceResponseType, Money>();
+        Map<USPSServiceResponseType, Integer> counts = new HashMap<USPSServiceResponseType, Integer>();
+        for (USPSContainerItemResponse itemResponse : itemResponses) {
+            for (Map.Entry<USPSServiceResponseType, USPSPostage> entry : itemResponse.getPostage().entrySet()) {
+                if (entry.getValue() == null || entry.getValue().getRate() == null) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("No rate for " + entry.getKey().getDescription() + " on package " + itemResponse.getPackageId() + ", the method is not quoted");
+                    }
+                    continue;
+                }
+                Money total = totals.get(entry.getKey());
+                totals.put(entry.getKey(), total == null ? entry.getValue().getRate() : total.add(entry.getValue().getRate()));
+                Integer count = counts.get(entry.getKey());
+                counts.put(entry.getKey(), count == null ? 1 : count + 1);
+            }
+        }
+        for (Map.Entry<USPSServiceResponseType, Integer> count : counts.entrySet()) {
+            if (count.getValue() < itemResponses.size()) {
+                totals.remove(count.getKey());
+            }
+        }
+        return totals;
+    }
+    
+    /**
+     * Determines the USPS service to request for the fulfillment group from its shipping method.
+     * In rate shopping mode every service is requested instead, so that a single quote prices
+     * all of the shipping methods offered for the group.
+     * <p/>
+     * Only the price of the group's own method is applied; the quotes for the other methods
+     * are kept by the service's rate cache, which is optional. Without a rate cache, rate
+     * shopping gains nothing: each call requests every service and the other quotes are
+     * discarded, so a later call for another method goes back to the host.
+     */
+    protected USPSServiceType resolveServiceType(FulfillmentGroup fulfillmentGroup) throws FulfillmentPriceException {
+        if (isRateShopping()) {
+            return USPSServiceType.ALL;
+        }
+        String[] methods = fulfillmentGroup.getMethod().split("_");
+        USPSServiceMethod uspsMethod = USPSServiceMethod.getInstance(methods[0]);
+        if (uspsMethod == null) {
+            throw new FulfillmentPriceException("Unable to find a USPSShippingMethod for the method found on the fulfillment group: (" + fulfillmentGroup.getMethod() + ")");
+        }
+        USPSServiceType serviceType = USPSServiceType.getInstanceByServiceMethod(uspsMethod);
+        if (serviceType == null) {
+            throw new FulfillmentPriceException("Unable to establish a USPSServiceType for the USPSServiceMethod: (" + uspsMethod.getType() + ")");
+        }
+        return serviceType;
+    }
+    
+    protected USPSShippingPriceResponse join(Future<USPSShippingPriceResponse> future) throws FulfillmentPriceException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FulfillmentPriceException) {
+                throw (FulfillmentPriceException) e.getCause();
+            }
+            throw new FulfillmentPriceException(e.getCause());
+        } catch (CancellationException e) {
+            throw new FulfillmentPriceException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FulfillmentPriceException(e);
+        }
+    }
+    
+    /**
+     * @return false if the fulfillment group is not for this module or has nothing to ship, in
+     * which case any pricing it needs has already been applied
+     */
+    protected boolean requiresQuote(FulfillmentGroup fulfillmentGroup) {
         if (!isValidModuleForService(fulfillmentGroup.getService()) && !isDefaultModule()) {
             LOG.info("fulfillment group (" + fulfillmentGroup.getId() + ") with a service type of (" + fulfillmentGroup.getService() + ") is not valid for this module service type (" + getServiceName() + ")");
-            return fulfillmentGroup;
+            return false;
         }
         if (fulfillmentGroup.getFulfillmentGroupItems().size() == 0) {
             LOG.warn("fulfillment group (" + fulfillmentGroup.getId() + ") does not contain any fulfillment group items. Unable to price USPS shipping");
             fulfillmentGroup.setShippingPrice(new Money(0D));
             fulfillmentGroup.setSaleShippingPrice(new Money(0D));
             fulfillmentGroup.setRetailShippingPrice(new Money(0D));
-            return fulfillmentGroup;
+            return false;
         }
-        List<USPSContainerItemRequest> requestItems = createPackages(fulfillmentGroup);
-        USPSShippingPriceRequest request = new USPSShippingPriceRequest();
-        request.getContainerItems().addAll(requestItems);
-        USPSShippingPriceResponse response = shippingCalculationService.process(request);
+        return true;
+    }
+    
+    protected FulfillmentGroup applyShippingPrice(FulfillmentGroup fulfillmentGroup, List<USPSContainerItemRequest> requestItems, USPSShippingPriceResponse response) throws FulfillmentPriceException {
         Stack<USPSContainerItemResponse> itemResponses = response.getResponses();
         
         USPSServiceResponseType responseType = USPSServiceResponseType.getInstanceByName(fulfillmentGroup.getMethod());
@@ -80,7 +251,7 @@ private static final Log LOG = LogFactory.getLog(USPSSingleItemPerPackageShippin
         Money shippingPrice = new Money(0D);
         for(USPSContainerItemResponse itemResponse : itemResponses) {
             USPSPostage postage = deducePostage(responseType, requestItems, itemResponse);
-            if (postage == null) {
+            if (postage == null || postage.getRate() == null) {
                 throw new FulfillmentPriceException("No postage found in the USPS response for the USPSServiceResponseType (" + responseType.getDescription() + ")");
             }
             shippingPrice = shippingPrice.add(postage.getRate());
@@ -95,9 +266,15 @@ private static final Log LOG = LogFactory.getLog(USPSSingleItemPerPackageShippin
     protected USPSPostage deducePostage(USPSServiceResponseType responseType, List<USPSContainerItemRequest> requestItems, USPSContainerItemResponse itemResponse) {
         USPSPostage postage = itemResponse.getPostage().get(responseType);
         if (postage == null) {
-            USPSContainerItemRequest itemRequest = findRequestByPackageId(itemResponse.getPackageId(), requestItems);
-            if (itemRequest != null) {
-                String shape = itemRequest.getContainerShape().getType().replaceAll(" ", "");
+            USPSContainerItemRequest itemRequest;
+            if (itemResponse instanceof USPSContainerItemRequest) {
+                //the response builders answer with the original request items
+                itemRequest = (USPSContainerItemRequest) itemResponse;
+            } else {
+                itemRequest = findRequestByPackageId(itemResponse.getPackageId(), requestItems);
+            }
+            if (itemRequest != null && itemRequest.getContainerShape() != null) {
+                String shape = compactShape(itemRequest.getContainerShape().getType());
                 String moreSpecificResponseType = responseType.getName() + shape;
                 USPSServiceResponseType nextResponseType = USPSServiceResponseType.getInstanceByName(moreSpecificResponseType);
                 if (nextResponseType != null) {
@@ -112,6 +289,20 @@ private static final Log LOG = LogFactory.getLog(USPSSingleItemPerPackageShippin
         return postage;
     }
     
+    /*
+     * Shapes such as "FLAT RATE BOX" form part of the more specific response type
+     * names without their spaces. There are only a handful of them, so the compacted
+     * form is kept rather than recomputed for every package.
+     */
+    private static String compactShape(String shape) {
+        String compact = COMPACT_SHAPES.get(shape);
+        if (compact == null) {
+            compact = shape.replaceAll(" ", "");
+            COMPACT_SHAPES.put(shape, compact);
+        }
+        return compact;
+    }
+    
     protected USPSContainerItemRequest findRequestByPackageId(String packageId, List<USPSContainerItemRequest> requestItems) {
         for (USPSContainerItemRequest itemRequest : requestItems) {
             if (itemRequest.getPackageId().equals(packageId)) {
@@ -121,6 +312,26 @@ private static final Log LOG = LogFactory.getLog(USPSSingleItemPerPackageShippin
         return null;
     }
     
+    public Boolean isRateShopping() {
+        return rateShopping;
+    }
+
+    /**
+     * Requests every service for each fulfillment group. Only pays off when the shipping
+     * calculation service has a rate cache; see resolveServiceType.
+     */
+    public void setRateShopping(Boolean rateShopping) {
+        this.rateShopping = rateShopping;
+    }
+    
+    public Long getQuoteTimeoutMillis() {
+        return quoteTimeoutMillis;
+    }
+
+    public void setQuoteTimeoutMillis(Long quoteTimeoutMillis) {
+        this.quoteTimeoutMillis = quoteTimeoutMillis;
+    }
+    
     public String getName() {
         return name;
     }
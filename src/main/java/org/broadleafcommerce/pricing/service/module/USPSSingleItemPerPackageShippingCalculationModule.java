@@ -29,7 +29,6 @@ import org.broadleafcommerce.core.order.domain.FulfillmentGroupItem;
 import org.broadleafcommerce.core.order.domain.GiftWrapOrderItem;
 import org.broadleafcommerce.core.order.domain.OrderItem;
 import org.broadleafcommerce.core.pricing.service.workflow.type.ShippingServiceType;
-import org.broadleafcommerce.order.service.type.USPSServiceMethod;
 import org.broadleafcommerce.vendor.usps.service.message.USPSContainerItem;
 import org.broadleafcommerce.vendor.usps.service.message.USPSContainerItemRequest;
 import org.broadleafcommerce.vendor.usps.service.type.USPSContainerShapeType;
@@ -82,16 +81,8 @@ public class USPSSingleItemPerPackageShippingCalculationModule extends USPSShipp
     }
 
     protected USPSContainerItemRequest createRequest(FulfillmentGroup fulfillmentGroup, DiscreteOrderItem discreteItem, int counter) throws FulfillmentPriceException {
-        String method = fulfillmentGroup.getMethod();
-        String[] methods = method.split("_");
-        USPSServiceMethod uspsMethod = USPSServiceMethod.getInstance(methods[0]);
-        if (uspsMethod == null) {
-            throw new FulfillmentPriceException("Unable to find a USPSShippingMethod for the method found on the fulfillment group: (" + fulfillmentGroup.getMethod() + ")");
-        }
-        USPSServiceType serviceType = USPSServiceType.getInstanceByServiceMethod(uspsMethod);
-        if (serviceType == null) {
-            throw new FulfillmentPriceException("Unable to establish a USPSServiceType for the USPSServiceMethod: (" + uspsMethod.getType() + ")");
-        }
+        String[] methods = fulfillmentGroup.getMethod().split("_");
+        USPSServiceType serviceType = resolveServiceType(fulfillmentGroup);
         USPSContainerItemRequest itemRequest = new USPSContainerItem();
         itemRequest.setService(serviceType);
         Sku sku = discreteItem.getSku();
@@ -105,7 +96,7 @@ public class USPSSingleItemPerPackageShippingCalculationModule extends USPSShipp
         }
         itemRequest.setGirth(sku.getDimension().getGirth());
         itemRequest.setHeight(sku.getDimension().getHeight());
-        if (serviceType.equals(USPSServiceType.ALL) || serviceType.equals(USPSServiceType.PARCEL) || serviceType.equals(USPSServiceType.ONLINE) || (serviceType.equals(USPSServiceType.FIRSTCLASS) && (itemRequest.getFirstClassType().equals(USPSFirstClassType.LETTER) || itemRequest.getFirstClassType().equals(USPSFirstClassType.FLAT)))) {
+        if (serviceType.equals(USPSServiceType.ALL) || serviceType.equals(USPSServiceType.PARCEL) || serviceType.equals(USPSServiceType.ONLINE) || (serviceType.equals(USPSServiceType.FIRSTCLASS) && itemRequest.getFirstClassType() != null && (itemRequest.getFirstClassType().equals(USPSFirstClassType.LETTER) || itemRequest.getFirstClassType().equals(USPSFirstClassType.FLAT)))) {
             itemRequest.setMachineSortable(sku.isMachineSortable());
         }
         itemRequest.setPackageId(String.valueOf(counter));
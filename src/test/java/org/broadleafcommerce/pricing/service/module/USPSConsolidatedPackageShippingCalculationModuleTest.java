@@ -0,0 +1,374 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.broadleafcommerce.pricing.service.module;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.broadleafcommerce.common.util.DimensionUnitOfMeasureType;
+import org.broadleafcommerce.common.util.WeightUnitOfMeasureType;
+import org.broadleafcommerce.common.vendor.service.exception.FulfillmentPriceException;
+import org.broadleafcommerce.core.catalog.domain.Dimension;
+import org.broadleafcommerce.core.catalog.domain.SkuImpl;
+import org.broadleafcommerce.core.catalog.domain.Weight;
+import org.broadleafcommerce.core.order.domain.BundleOrderItemImpl;
+import org.broadleafcommerce.core.order.domain.DiscreteOrderItem;
+import org.broadleafcommerce.core.order.domain.DiscreteOrderItemImpl;
+import org.broadleafcommerce.core.order.domain.FulfillmentGroup;
+import org.broadleafcommerce.core.order.domain.FulfillmentGroupImpl;
+import org.broadleafcommerce.core.order.domain.FulfillmentGroupItemImpl;
+import org.broadleafcommerce.core.order.domain.OrderItem;
+import org.broadleafcommerce.order.service.type.USPSServiceMethod;
+import org.broadleafcommerce.profile.core.domain.AddressImpl;
+import org.broadleafcommerce.vendor.usps.service.message.USPSContainerItemRequest;
+import org.broadleafcommerce.vendor.usps.service.message.USPSRequestValidator;
+import org.broadleafcommerce.vendor.usps.service.message.USPSShippingPriceRequest;
+import org.broadleafcommerce.vendor.usps.service.type.USPSContainerShapeType;
+import org.broadleafcommerce.vendor.usps.service.type.USPSContainerSizeType;
+import org.broadleafcommerce.vendor.usps.service.type.USPSFirstClassType;
+import org.broadleafcommerce.vendor.usps.service.type.USPSShippingPriceErrorCode;
+import org.testng.annotations.Test;
+
+public class USPSConsolidatedPackageShippingCalculationModuleTest {
+
+    @Test(groups = { "testConsolidatedPackaging" })
+    public void testExactFit() throws Exception {
+        USPSConsolidatedPackageShippingCalculationModule module = buildModule("1", buildContainer("cube", 10, 10, 10, "0.5", null));
+        List<USPSContainerItemRequest> packages = module.createPackages(buildFulfillmentGroup(USPSServiceMethod.PRIORITYMAIL.getType(), buildItem("1", 5, 5, 5, true), 8));
+        assert packages.size() == 1;
+        assertPackage(packages.get(0), "0", "8.5", 10, 10, 10);
+        assert packages.get(0).getGirth().compareTo(new BigDecimal("40")) == 0;
+
+        packages = module.createPackages(buildFulfillmentGroup(USPSServiceMethod.PRIORITYMAIL.getType(), buildItem("1", 5, 5, 5, true), 9));
+        assert packages.size() == 2;
+        assertPackage(packages.get(0), "0", "8.5", 10, 10, 10);
+        assertPackage(packages.get(1), "1", "1.5", 10, 10, 10);
+    }
+
+    @Test(groups = { "testConsolidatedPackaging" })
+    public void testOverLimitItemsAreShippedAlone() throws Exception {
+        USPSConsolidatedPackageShippingCalculationModule module = buildModule("1", buildContainer("cube", 10, 10, 10, "0", null));
+        FulfillmentGroup fulfillmentGroup = buildFulfillmentGroup(USPSServiceMethod.PRIORITYMAIL.getType());
+        //longer than the container
+        addItem(fulfillmentGroup, buildItem("1", 20, 4, 4, true), 1);
+        //heavier than a package may be
+        addItem(fulfillmentGroup, buildItem("80", 5, 5, 5, true), 1);
+        //without dimensions
+        addItem(fulfillmentGroup, buildItem("1", 0, 0, 0, true), 1);
+        addItem(fulfillmentGroup, buildItem("1", 5, 5, 5, true), 1);
+        List<USPSContainerItemRequest> packages = module.createPackages(fulfillmentGroup);
+        assert packages.size() == 4;
+        assertPackage(packages.get(0), "0", "1", 20, 4, 4);
+        assertPackage(packages.get(1), "1", "80", 5, 5, 5);
+        assert "2".equals(packages.get(2).getPackageId());
+        assert packages.get(2).getWidth() == null;
+        assertPackage(packages.get(3), "3", "1", 10, 10, 10);
+    }
+
+    @Test(groups = { "testConsolidatedPackaging" })
+    public void testSplitAcrossContainers() throws Exception {
+        //by weight
+        USPSConsolidatedPackageShippingCalculationModule module = buildModule("1", buildContainer("cube", 12, 12, 12, "1", null));
+        List<USPSContainerItemRequest> packages = module.createPackages(buildFulfillmentGroup(USPSServiceMethod.PRIORITYMAIL.getType(), buildItem("30", 4, 4, 4, true), 5));
+        assert packages.size() == 3;
+        assertPackage(packages.get(0), "0", "61", 12, 12, 12);
+        assertPackage(packages.get(1), "1", "61", 12, 12, 12);
+        assertPackage(packages.get(2), "2", "31", 12, 12, 12);
+
+        //by volume
+        module = buildModule("1", buildContainer("cube", 10, 10, 10, "0", null));
+        packages = module.createPackages(buildFulfillmentGroup(USPSServiceMethod.PRIORITYMAIL.getType(), buildItem("1", 10, 10, 6, true), 3));
+        assert packages.size() == 3;
+
+        //by fill ratio, two of these fill exactly 80% of the container
+        module = buildModule("0.75", buildContainer("cube", 10, 10, 10, "0", null));
+        packages = module.createPackages(buildFulfillmentGroup(USPSServiceMethod.PRIORITYMAIL.getType(), buildItem("1", 10, 10, 4, true), 2));
+        assert packages.size() == 2;
+    }
+
+    @Test(groups = { "testConsolidatedPackaging" })
+    public void testBoxesAreShrunkToTheSmallestContainer() throws Exception {
+        USPSConsolidatedPackageShippingCalculationModule module = buildModule("1", buildContainer("large", 12, 12, 12, "1", null), buildContainer("small", 6, 6, 6, "0.25", null));
+        List<USPSContainerItemRequest> packages = module.createPackages(buildFulfillmentGroup(USPSServiceMethod.PRIORITYMAIL.getType(), buildItem("1", 2, 2, 2, true), 2));
+        assert packages.size() == 1;
+        assertPackage(packages.get(0), "0", "2.25", 6, 6, 6);
+
+        FulfillmentGroup fulfillmentGroup = buildFulfillmentGroup(USPSServiceMethod.PRIORITYMAIL.getType(), buildItem("1", 2, 2, 2, true), 2);
+        addItem(fulfillmentGroup, buildItem("5", 10, 10, 10, true), 1);
+        packages = module.createPackages(fulfillmentGroup);
+        assert packages.size() == 1;
+        assertPackage(packages.get(0), "0", "8", 12, 12, 12);
+    }
+
+    @Test(groups = { "testConsolidatedPackaging" })
+    public void testPackingIsDeterministic() throws Exception {
+        USPSConsolidatedPackageShippingCalculationModule module = buildModule("0.85", buildContainer("large", 18, 14, 12, "1.5", null), buildContainer("medium", 12, 10, 8, "0.75", null), buildContainer("small", 8, 6, 4, "0.25", null));
+        List<String> expected = null;
+        for (int run = 0; run < 5; run++) {
+            FulfillmentGroup fulfillmentGroup = buildFulfillmentGroup(USPSServiceMethod.PRIORITYMAIL.getType());
+            addItem(fulfillmentGroup, buildItem("2.5", 6, 5, 4, true), 7);
+            addItem(fulfillmentGroup, buildItem("0.4", 3, 3, 3, false), 11);
+            addItem(fulfillmentGroup, buildItem("9", 11, 9, 7, true), 3);
+            addItem(fulfillmentGroup, buildItem("2.5", 4, 5, 6, true), 4);
+            addItem(fulfillmentGroup, buildItem("1", 30, 2, 2, true), 1);
+            List<String> actual = describe(module.createPackages(fulfillmentGroup));
+            if (expected == null) {
+                expected = actual;
+            } else {
+                assert expected.equals(actual) : expected + " " + actual;
+            }
+            //a new module packs the same way as a warmed up one
+            module = buildModule("0.85", module.getContainers().toArray(new USPSPackagingContainer[0]));
+        }
+    }
+
+    @Test(groups = { "testConsolidatedPackaging" })
+    public void testTareWeight() throws Exception {
+        USPSConsolidatedPackageShippingCalculationModule module = buildModule("1", buildContainer("cube", 10, 10, 10, "2", "10"));
+        List<USPSContainerItemRequest> packages = module.createPackages(buildFulfillmentGroup(USPSServiceMethod.PRIORITYMAIL.getType(), buildItem("3", 2, 2, 2, true), 5));
+        assert packages.size() == 3;
+        assertPackage(packages.get(0), "0", "8", 10, 10, 10);
+        assertPackage(packages.get(1), "1", "8", 10, 10, 10);
+        assertPackage(packages.get(2), "2", "5", 10, 10, 10);
+
+        //rounded up to the next hundredth of a pound
+        packages = module.createPackages(buildFulfillmentGroup(USPSServiceMethod.PRIORITYMAIL.getType(), buildItem("1.001", 2, 2, 2, true), 1));
+        assertPackage(packages.get(0), "0", "3.01", 10, 10, 10);
+    }
+
+    @Test(groups = { "testConsolidatedPackaging" })
+    public void testPackageLimits() throws Exception {
+        //40 + 2 * (20 + 20) is over the length plus girth limit
+        USPSConsolidatedPackageShippingCalculationModule module = buildModule("1", buildContainer("oversized", 40, 20, 20, "1", null), buildContainer("cube", 10, 10, 10, "0", null));
+        List<USPSContainerItemRequest> packages = module.createPackages(buildFulfillmentGroup(USPSServiceMethod.PRIORITYMAIL.getType(), buildItem("1", 30, 10, 10, true), 1));
+        assert packages.size() == 1;
+        assertPackage(packages.get(0), "0", "1", 30, 10, 10);
+
+        //no weight left for contents once the tare is counted
+        module = buildModule("1", buildContainer("heavy", 10, 10, 10, "70", null));
+        packages = module.createPackages(buildFulfillmentGroup(USPSServiceMethod.PRIORITYMAIL.getType(), buildItem("1", 2, 2, 2, true), 2));
+        assert packages.size() == 2;
+        assertPackage(packages.get(0), "0", "1", 2, 2, 2);
+
+        //the module limit applies below a container limit
+        module = buildModule("1", buildContainer("cube", 10, 10, 10, "0", "100"));
+        module.setMaxPackageWeight(new BigDecimal("20"));
+        packages = module.createPackages(buildFulfillmentGroup(USPSServiceMethod.PRIORITYMAIL.getType(), buildItem("15", 2, 2, 2, true), 2));
+        assert packages.size() == 2;
+        module.setMaxPackageWeight(new BigDecimal("30"));
+        packages = module.createPackages(buildFulfillmentGroup(USPSServiceMethod.PRIORITYMAIL.getType(), buildItem("15", 2, 2, 2, true), 2));
+        assert packages.size() == 1;
+        module.setMaxLengthPlusGirth(new BigDecimal("49"));
+        packages = module.createPackages(buildFulfillmentGroup(USPSServiceMethod.PRIORITYMAIL.getType(), buildItem("15", 2, 2, 2, true), 2));
+        assert packages.size() == 2;
+        assertPackage(packages.get(0), "0", "15", 2, 2, 2);
+    }
+
+    @Test(groups = { "testConsolidatedPackaging" })
+    public void testContainerSize() throws Exception {
+        assert findContainerSize(buildContainer("long", 14, 10, 6, "0", null)).equals(USPSContainerSizeType.LARGE);
+        assert findContainerSize(buildContainer("deep", 6, 10, 14, "0", null)).equals(USPSContainerSizeType.LARGE);
+        assert findContainerSize(buildContainer("foot", 12, 10, 6, "0", null)).equals(USPSContainerSizeType.REGULAR);
+        USPSPackagingContainer container = buildContainer("long", 14, 10, 6, "0", null);
+        container.setContainerSize(USPSContainerSizeType.REGULAR);
+        assert findContainerSize(container).equals(USPSContainerSizeType.REGULAR);
+    }
+
+    @Test(groups = { "testConsolidatedPackaging" })
+    public void testFirstClass() throws Exception {
+        USPSConsolidatedPackageShippingCalculationModule module = buildModule("1", buildContainer("cube", 10, 10, 10, "0", null));
+        //no first class type on the method
+        FulfillmentGroup fulfillmentGroup = buildFulfillmentGroup(USPSServiceMethod.FIRSTCLASS.getType(), buildItem("0.2", 2, 2, 2, true), 1);
+        addItem(fulfillmentGroup, buildItem("0.2", 0, 0, 0, true), 1);
+        List<USPSContainerItemRequest> packages = module.createPackages(fulfillmentGroup);
+        assert packages.size() == 2;
+        for (USPSContainerItemRequest itemRequest : packages) {
+            assert itemRequest.getFirstClassType() == null;
+            assert itemRequest.isMachineSortable() == null;
+        }
+
+        //a box is only machinable if everything in it is
+        fulfillmentGroup = buildFulfillmentGroup(USPSServiceMethod.FIRSTCLASS.getType() + "_" + USPSFirstClassType.LETTER.getType(), buildItem("0.1", 2, 2, 2, true), 2);
+        packages = module.createPackages(fulfillmentGroup);
+        assert packages.get(0).getFirstClassType().equals(USPSFirstClassType.LETTER);
+        assert Boolean.TRUE.equals(packages.get(0).isMachineSortable());
+        addItem(fulfillmentGroup, buildItem("0.1", 2, 2, 2, false), 1);
+        packages = module.createPackages(fulfillmentGroup);
+        assert packages.size() == 1;
+        assert Boolean.FALSE.equals(packages.get(0).isMachineSortable());
+    }
+
+    @Test(groups = { "testConsolidatedPackaging" })
+    public void testEveryUnitOfQuantityIsPacked() throws Exception {
+        //without containers every unit is shipped in its own packaging
+        USPSConsolidatedPackageShippingCalculationModule module = buildModule("1");
+        FulfillmentGroup fulfillmentGroup = buildFulfillmentGroup(USPSServiceMethod.PRIORITYMAIL.getType(), buildItem("1", 2, 2, 2, true), 3);
+        BundleOrderItemImpl bundle = new BundleOrderItemImpl();
+        DiscreteOrderItem component = buildItem("1", 3, 3, 3, true);
+        ((DiscreteOrderItemImpl) component).setQuantity(2);
+        bundle.getDiscreteOrderItems().add(component);
+        addItem(fulfillmentGroup, bundle, 2);
+        List<USPSContainerItemRequest> packages = module.createPackages(fulfillmentGroup);
+        assert packages.size() == 7;
+        for (int j = 0; j < packages.size(); j++) {
+            assert String.valueOf(j).equals(packages.get(j).getPackageId());
+        }
+        assert packages.get(2).getWidth().compareTo(new BigDecimal("2")) == 0;
+        assert packages.get(3).getWidth().compareTo(new BigDecimal("3")) == 0;
+    }
+
+    @Test(groups = { "testConsolidatedPackaging" })
+    public void testQuotesPassTheRateV2Validator() throws Exception {
+        USPSRequestValidator validator = new USPSRequestValidator(new org.broadleafcommerce.vendor.usps.service.message.v2.USPSRequestValidator());
+        USPSConsolidatedPackageShippingCalculationModule module = buildModule("0.85", buildContainer("small", 8, 6, 4, "0.2", null), buildContainer("large", 24, 18, 12, "1", null));
+        List<USPSContainerItemRequest> packages = module.createPackages(buildCart(USPSServiceMethod.PARCELPOST.getType()));
+        assert packages.size() > 1;
+        for (USPSContainerItemRequest itemRequest : packages) {
+            //no shape is sent unless one is configured
+            assert itemRequest.getContainerShape() == null;
+        }
+        validator.validateRequest(buildRequest(packages));
+
+        module.setRateShopping(true);
+        validator.validateRequest(buildRequest(module.createPackages(buildCart(USPSServiceMethod.PRIORITYMAIL.getType()))));
+        module.setRateShopping(false);
+
+        //priority mail needs a shape in RateV2
+        try {
+            validator.validateRequest(buildRequest(module.createPackages(buildCart(USPSServiceMethod.PRIORITYMAIL.getType()))));
+            assert false;
+        } catch (FulfillmentPriceException e) {
+            assert USPSShippingPriceErrorCode.SHAPENOTSPECIFIED.getType().equals(e.getFulfillmentPriceExceptionResponse().getErrorCode());
+        }
+        for (USPSPackagingContainer container : module.getContainers()) {
+            container.setContainerShape(USPSContainerShapeType.FLATRATEBOX);
+        }
+        packages = module.createPackages(buildCart(USPSServiceMethod.PRIORITYMAIL.getType()));
+        assert packages.get(0).getContainerShape().equals(USPSContainerShapeType.FLATRATEBOX);
+        validator.validateRequest(buildRequest(packages));
+    }
+
+    /*
+     * Too heavy for a single box, so the cart is shipped as several packages.
+     */
+    private static FulfillmentGroup buildCart(String method) {
+        FulfillmentGroup fulfillmentGroup = buildFulfillmentGroup(method, buildItem("2.5", 6, 5, 4, true), 7);
+        addItem(fulfillmentGroup, buildItem("0.4", 3, 3, 3, true), 11);
+        addItem(fulfillmentGroup, buildItem("9", 11, 9, 7, true), 6);
+        return fulfillmentGroup;
+    }
+
+    private static USPSShippingPriceRequest buildRequest(List<USPSContainerItemRequest> packages) {
+        USPSShippingPriceRequest request = new USPSShippingPriceRequest();
+        request.getContainerItems().addAll(packages);
+        return request;
+    }
+
+    private static USPSContainerSizeType findContainerSize(USPSPackagingContainer container) throws Exception {
+        USPSConsolidatedPackageShippingCalculationModule module = buildModule("1", container);
+        List<USPSContainerItemRequest> packages = module.createPackages(buildFulfillmentGroup(USPSServiceMethod.PRIORITYMAIL.getType(), buildItem("1", 2, 2, 2, true), 1));
+        assert packages.size() == 1;
+        return packages.get(0).getContainerSize();
+    }
+
+    private static void assertPackage(USPSContainerItemRequest itemRequest, String packageId, String pounds, int width, int height, int depth) {
+        assert packageId.equals(itemRequest.getPackageId()) : itemRequest.getPackageId();
+        assert itemRequest.getWeight().compareTo(new BigDecimal(pounds)) == 0 : itemRequest.getWeight();
+        assert itemRequest.getWidth().compareTo(BigDecimal.valueOf(width)) == 0 : itemRequest.getWidth();
+        assert itemRequest.getHeight().compareTo(BigDecimal.valueOf(height)) == 0 : itemRequest.getHeight();
+        assert itemRequest.getDepth().compareTo(BigDecimal.valueOf(depth)) == 0 : itemRequest.getDepth();
+    }
+
+    private static List<String> describe(List<USPSContainerItemRequest> packages) {
+        List<String> descriptions = new ArrayList<String>(packages.size());
+        for (USPSContainerItemRequest itemRequest : packages) {
+            descriptions.add(itemRequest.getPackageId() + " " + itemRequest.getWeight() + " " + itemRequest.getWidth() + "x" + itemRequest.getHeight() + "x" + itemRequest.getDepth() + " " + (itemRequest.getContainerSize() == null ? null : itemRequest.getContainerSize().getType()) + " " + itemRequest.isMachineSortable());
+        }
+        return descriptions;
+    }
+
+    private static USPSConsolidatedPackageShippingCalculationModule buildModule(String fillRatio, USPSPackagingContainer... containers) {
+        USPSConsolidatedPackageShippingCalculationModule module = new USPSConsolidatedPackageShippingCalculationModule();
+        module.setOriginationPostalCode("10022");
+        module.setFillRatio(new BigDecimal(fillRatio));
+        module.setContainers(new ArrayList<USPSPackagingContainer>(Arrays.asList(containers)));
+        return module;
+    }
+
+    private static USPSPackagingContainer buildContainer(String name, int width, int height, int depth, String tareWeight, String maxWeight) {
+        USPSPackagingContainer container = new USPSPackagingContainer();
+        container.setName(name);
+        container.setWidth(BigDecimal.valueOf(width));
+        container.setHeight(BigDecimal.valueOf(height));
+        container.setDepth(BigDecimal.valueOf(depth));
+        container.setTareWeight(new BigDecimal(tareWeight));
+        if (maxWeight != null) {
+            container.setMaxWeight(new BigDecimal(maxWeight));
+        }
+        return container;
+    }
+
+    /**
+     * @param width 0 for an item without dimensions
+     */
+    private static DiscreteOrderItem buildItem(String pounds, int width, int height, int depth, boolean machineSortable) {
+        SkuImpl sku = new SkuImpl();
+        Weight weight = new Weight();
+        weight.setWeight(new BigDecimal(pounds));
+        weight.setWeightUnitOfMeasure(WeightUnitOfMeasureType.POUNDS);
+        sku.setWeight(weight);
+        Dimension dimension = new Dimension();
+        if (width > 0) {
+            dimension.setWidth(BigDecimal.valueOf(width));
+            dimension.setHeight(BigDecimal.valueOf(height));
+            dimension.setDepth(BigDecimal.valueOf(depth));
+            dimension.setDimensionUnitOfMeasure(DimensionUnitOfMeasureType.INCHES);
+        }
+        sku.setDimension(dimension);
+        sku.setMachineSortable(machineSortable);
+        DiscreteOrderItemImpl discreteItem = new DiscreteOrderItemImpl();
+        discreteItem.setSku(sku);
+        discreteItem.setQuantity(1);
+        return discreteItem;
+    }
+
+    private static FulfillmentGroup buildFulfillmentGroup(String method) {
+        FulfillmentGroupImpl fulfillmentGroup = new FulfillmentGroupImpl();
+        fulfillmentGroup.setMethod(method);
+        AddressImpl address = new AddressImpl();
+        address.setPostalCode("20008");
+        fulfillmentGroup.setAddress(address);
+        return fulfillmentGroup;
+    }
+
+    private static FulfillmentGroup buildFulfillmentGroup(String method, OrderItem orderItem, int quantity) {
+        FulfillmentGroup fulfillmentGroup = buildFulfillmentGroup(method);
+        addItem(fulfillmentGroup, orderItem, quantity);
+        return fulfillmentGroup;
+    }
+
+    private static void addItem(FulfillmentGroup fulfillmentGroup, OrderItem orderItem, int quantity) {
+        FulfillmentGroupItemImpl fgItem = new FulfillmentGroupItemImpl();
+        fgItem.setOrderItem(orderItem);
+        fgItem.setQuantity(quantity);
+        fulfillmentGroup.getFulfillmentGroupItems().add(fgItem);
+    }
+
+}
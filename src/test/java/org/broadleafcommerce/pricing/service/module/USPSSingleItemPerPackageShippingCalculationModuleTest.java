@@ -0,0 +1,87 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.broadleafcommerce.pricing.service.module;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.broadleafcommerce.common.money.Money;
+import org.broadleafcommerce.vendor.usps.service.message.USPSContainerItem;
+import org.broadleafcommerce.vendor.usps.service.message.USPSContainerItemResponse;
+import org.broadleafcommerce.vendor.usps.service.message.USPSPostage;
+import org.broadleafcommerce.vendor.usps.service.type.USPSServiceResponseType;
+import org.testng.annotations.Test;
+
+public class USPSSingleItemPerPackageShippingCalculationModuleTest {
+
+    @Test(groups = { "testSumPostage" })
+    public void testSumAcrossPackages() throws Exception {
+        List<USPSContainerItemResponse> itemResponses = new ArrayList<USPSContainerItemResponse>();
+        itemResponses.add(buildResponse("0", USPSServiceResponseType.PRIORITYMAIL, "4.50", USPSServiceResponseType.PARCELPOST, "3.25"));
+        itemResponses.add(buildResponse("1", USPSServiceResponseType.PRIORITYMAIL, "5.50", USPSServiceResponseType.PARCELPOST, "2.75"));
+        Map<USPSServiceResponseType, Money> totals = new USPSSingleItemPerPackageShippingCalculationModule().sumPostage(itemResponses);
+        assert totals.size() == 2;
+        assert totals.get(USPSServiceResponseType.PRIORITYMAIL).getAmount().compareTo(new BigDecimal("10.00")) == 0;
+        assert totals.get(USPSServiceResponseType.PARCELPOST).getAmount().compareTo(new BigDecimal("6.00")) == 0;
+    }
+
+    @Test(groups = { "testSumPostage" })
+    public void testMethodMissingForAPackageIsLeftOut() throws Exception {
+        List<USPSContainerItemResponse> itemResponses = new ArrayList<USPSContainerItemResponse>();
+        itemResponses.add(buildResponse("0", USPSServiceResponseType.PRIORITYMAIL, "4.50", USPSServiceResponseType.PARCELPOST, "3.25"));
+        itemResponses.add(buildResponse("1", USPSServiceResponseType.PRIORITYMAIL, "5.50", null, null));
+        Map<USPSServiceResponseType, Money> totals = new USPSSingleItemPerPackageShippingCalculationModule().sumPostage(itemResponses);
+        assert totals.size() == 1;
+        assert totals.get(USPSServiceResponseType.PRIORITYMAIL).getAmount().compareTo(new BigDecimal("10.00")) == 0;
+    }
+
+    @Test(groups = { "testSumPostage" })
+    public void testNullRateIsSkipped() throws Exception {
+        List<USPSContainerItemResponse> itemResponses = new ArrayList<USPSContainerItemResponse>();
+        itemResponses.add(buildResponse("0", USPSServiceResponseType.PRIORITYMAIL, "4.50", USPSServiceResponseType.PARCELPOST, "3.25"));
+        itemResponses.add(buildResponse("1", USPSServiceResponseType.PRIORITYMAIL, "5.50", USPSServiceResponseType.PARCELPOST, null));
+        Map<USPSServiceResponseType, Money> totals = new USPSSingleItemPerPackageShippingCalculationModule().sumPostage(itemResponses);
+        assert totals.size() == 1;
+        assert !totals.containsKey(USPSServiceResponseType.PARCELPOST);
+
+        itemResponses.get(1).getPostage().put(USPSServiceResponseType.PARCELPOST, null);
+        totals = new USPSSingleItemPerPackageShippingCalculationModule().sumPostage(itemResponses);
+        assert !totals.containsKey(USPSServiceResponseType.PARCELPOST);
+    }
+
+    private static USPSContainerItemResponse buildResponse(String packageId, USPSServiceResponseType firstType, String firstRate, USPSServiceResponseType secondType, String secondRate) {
+        USPSContainerItem itemResponse = new USPSContainerItem();
+        itemResponse.setPackageId(packageId);
+        itemResponse.getPostage().put(firstType, buildPostage(firstRate));
+        if (secondType != null) {
+            itemResponse.getPostage().put(secondType, buildPostage(secondRate));
+        }
+        return itemResponse;
+    }
+
+    private static USPSPostage buildPostage(String rate) {
+        USPSPostage postage = new USPSPostage();
+        if (rate != null) {
+            postage.setRate(new Money(rate));
+        }
+        return postage;
+    }
+
+}